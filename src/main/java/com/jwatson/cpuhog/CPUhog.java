@@ -51,10 +51,41 @@
  *
  * -q Supress logging information.
  *
+ * -r nnn Open loop mode. Instead of each load thread repeating the load as fast as the target CPU
+ * allows, generate nnn requests per second (may be fractional) that are executed by a pool of -t
+ * worker threads. Requests that arrive while all the workers are busy wait in a queue. The
+ * monitoring output then includes the completed request rate, the queue length, the mean service
+ * time and the response time percentiles, measured from when each request should have arrived.
+ *
+ * The -a and -c options cannot be used with -r as the open loop load is set by the request rate.
+ *
+ * -rc nnn The mean CPU time (microseconds) used by each request (default 1000).
+ *
+ * -rd dist The distribution of the CPU time of each request: fixed, exp (exponential - the default)
+ * or uniform (between zero and twice the mean).
+ *
+ * -rb nnn Requests arrive in bursts of nnn (default 1). The bursts arrive at random with the rate
+ * reduced to keep the same average request rate.
+ *
+ * -rq nnn The most requests that may be queued waiting for a worker (default 100000). Requests
+ * arriving when the queue is full are dropped and the number dropped is shown in the monitoring
+ * output.
+ *
+ * -f file Run the scenario in the given file instead of a single load. A scenario is a sequence of
+ * phases, each running one or more groups of load threads with their own settings for a fixed time,
+ * with assertions on the metrics measured over each phase. The other options give the defaults for
+ * the groups. The exit status is 0 if all the assertions pass. See {@link Scenario} for the format.
+ *
+ * On Linux the monitoring output also includes the package power (W), the load operations per
+ * joule and the hottest thermal zone temperature when the RAPL energy counters and thermal zones
+ * can be read from /sys. These columns are omitted when the information is not available.
+ *
  */
 
 package com.jwatson.cpuhog;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.management.CompilationMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
@@ -63,7 +94,7 @@ import java.lang.management.MemoryPoolMXBean;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.management.RuntimeMXBean;
 import java.lang.management.ThreadMXBean;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -113,7 +144,7 @@ public final class CPUhog {
      * determines how much bigger.
      */
     public static final int SIGNAL_FACTOR = 100;
-    private static final int PERCENT_100 = 0;
+    private static final int PERCENT_100 = 100;
 
     /** Number of load threads the application will create. */
     private static int nThreads = 10;
@@ -143,17 +174,28 @@ public final class CPUhog {
 
     /** Target CPU percentage hogging to aim for. */
     private static int targetCPUpercent = 100;
-    /** Keep track of the threads running the load tasks. */
-    private static ArrayList<ThrashThread> loadThreads;
+
+    /** Request rate for the open loop mode. Zero runs the closed loop load threads. */
+    private static double requestsPerSecond;
+    /** Mean CPU time used by each request in open loop mode. */
+    private static long requestCost_us = 1000;
+    /** Distribution of the CPU time used by each request. */
+    private static RequestGenerator.CostDistribution requestCostDistribution =
+            RequestGenerator.CostDistribution.EXPONENTIAL;
+    /** Number of requests arriving at once. */
+    private static int requestBurstSize = 1;
+    /** Most requests that may wait for a worker. */
+    private static int maxQueueLength = 100000;
+    /** Scenario file to run instead of the single load given on the command line. */
+    private static String scenarioFile;
+
+    /** The groups of load threads currently running. */
+    private static volatile List<WorkloadGroup> groups = Collections.emptyList();
 
     /** A thread to monitor the worker threads. */
     private static Thread monitorThread;
-    /**
-     * The wait time in the load loop cannot be set by the user but is adjusted by the application
-     * to fix the load at the requested percentage. All load threads use the same wait time. Total
-     * loop time is loadExecute_ns/1e9 + loadWaitTime_ms/1e3
-     */
-    private static int loadWaitTime_ms;
+    /** Energy and temperature sensors read by the monitor. */
+    private static PowerMonitor powerMonitor;
 
     private CPUhog() {}
 
@@ -161,39 +203,26 @@ public final class CPUhog {
         return monitorWait_ms;
     }
 
-    public static int getLoadSize() {
-        return loadSize;
-    }
-
-    public static boolean isAutoSizeAdjustmentAllowed() {
-        return autoSizeAdjustmentAllowed;
-    }
-
-    public static void setAutoSizeAdjustmentAllowed(boolean autoSizeAdjustmentAllowed) {
-        CPUhog.autoSizeAdjustmentAllowed = autoSizeAdjustmentAllowed;
+    /**
+     * The groups of load threads currently running. The list is replaced, not changed, when a
+     * scenario moves to a new phase.
+     */
+    public static List<WorkloadGroup> getGroups() {
+        return groups;
     }
 
-    public static void setLoadSize(int loadSize) {
-        CPUhog.loadSize = loadSize;
+    static void setGroups(List<WorkloadGroup> groups) {
+        CPUhog.groups = groups;
     }
 
-    public static ArrayList<ThrashThread> getLoadThreads() {
-        return loadThreads;
+    public static boolean isScenario() {
+        return scenarioFile != null;
     }
 
     public static boolean isGenerateLogging() {
         return generateLogging;
     }
 
-    @SuppressWarnings("checkstyle:parametername")
-    public static void setLoadWaitTime_ms(int loadWaitTime_ms) {
-        CPUhog.loadWaitTime_ms = loadWaitTime_ms;
-    }
-
-    public static int getLoadWaitTime_ms() {
-        return loadWaitTime_ms;
-    }
-
     /**
      * Main entry point for the application.
      *
@@ -220,7 +249,7 @@ public final class CPUhog {
                                 "must have coefficients vector size >= 1");
                     }
                 } else if (args[i].equals("-a")) {
-                    setAutoSizeAdjustmentAllowed(true);
+                    autoSizeAdjustmentAllowed = true;
                 } else if (args[i].equals("-w")) {
                     i++;
                     monitorWait_ms = Long.parseLong(args[i]);
@@ -256,46 +285,119 @@ public final class CPUhog {
                 } else if (args[i].equals("-c")) {
                     i++;
                     targetCPUpercent = Integer.parseInt(args[i]);
-                    if (targetCPUpercent > PERCENT_100 || targetCPUpercent < 0) {
-                        throw new IllegalArgumentException("must have 0 <= CPU <= 100");
+                    if (targetCPUpercent > PERCENT_100 || targetCPUpercent < 1) {
+                        throw new IllegalArgumentException("must have 1 <= CPU <= 100");
                     }
                 } else if (args[i].equals("-q")) {
                     generateLogging = false;
+                } else if (args[i].equals("-r")) {
+                    i++;
+                    requestsPerSecond = Double.parseDouble(args[i]);
+                    if (!(requestsPerSecond > 0)) {
+                        throw new IllegalArgumentException("must have request rate > 0");
+                    }
+                } else if (args[i].equals("-rc")) {
+                    i++;
+                    requestCost_us = Long.parseLong(args[i]);
+                    if (requestCost_us < 1) {
+                        throw new IllegalArgumentException("must have request cost >= 1 us");
+                    }
+                } else if (args[i].equals("-rd")) {
+                    i++;
+                    requestCostDistribution =
+                            RequestGenerator.CostDistribution.fromOptionName(args[i]);
+                } else if (args[i].equals("-rb")) {
+                    i++;
+                    requestBurstSize = Integer.parseInt(args[i]);
+                    if (requestBurstSize < 1) {
+                        throw new IllegalArgumentException("must have burst size >= 1");
+                    }
+                } else if (args[i].equals("-rq")) {
+                    i++;
+                    maxQueueLength = Integer.parseInt(args[i]);
+                    if (maxQueueLength < 1) {
+                        throw new IllegalArgumentException("must have queue length >= 1");
+                    }
+                } else if (args[i].equals("-f")) {
+                    i++;
+                    scenarioFile = args[i];
                 } else {
                     throw new IllegalArgumentException("Bad command line arguments");
                 }
             }
+            // The target CPU and load sizing only control the closed loop load
+            if (requestsPerSecond > 0
+                    && (autoSizeAdjustmentAllowed || targetCPUpercent < PERCENT_100)) {
+                throw new IllegalArgumentException("-a and -c cannot be used with -r");
+            }
 
         } catch (IllegalArgumentException e) {
             usage();
             System.exit(-1);
         }
 
+        WorkloadGroup commandLineGroup = new WorkloadGroup("load");
+        commandLineGroup.setThreadCount(nThreads);
+        commandLineGroup.setLoadSize(loadSize);
+        commandLineGroup.setAutoSizeAdjustmentAllowed(autoSizeAdjustmentAllowed);
+        commandLineGroup.setTargetCPUpercent(targetCPUpercent);
+        commandLineGroup.setRequestsPerSecond(requestsPerSecond);
+        commandLineGroup.setRequestCost_us(requestCost_us);
+        commandLineGroup.setRequestCostDistribution(requestCostDistribution);
+        commandLineGroup.setRequestBurstSize(requestBurstSize);
+        commandLineGroup.setMaxQueueLength(maxQueueLength);
+
+        Scenario scenario = null;
+        if (isScenario()) {
+            try {
+                scenario = Scenario.load(new File(scenarioFile), commandLineGroup);
+            } catch (IOException e) {
+                System.err.println("Cannot read scenario file: " + e.getMessage());
+                System.exit(-1);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Bad scenario file: " + e.getMessage());
+                System.exit(-1);
+            }
+        }
+
+        powerMonitor = new PowerMonitor();
+
         dumpSystemInformation();
 
+        monitorThread = new Thread(new MonitorThread(powerMonitor));
+
+        if (isScenario()) {
+            System.out.println("Running scenario " + scenarioFile
+                    + " with monitoring displayed every " + monitorWait_ms + "ms.");
+            monitorThread.start();
+            System.exit(scenario.run(powerMonitor) ? 0 : 1);
+        }
+
         System.out.println("Hogging the CPU with " + nThreads + " java threads " + "doing "
                 + loadSize + " element convolution.");
-        System.out.print("Monitoring displayed every " + monitorWait_ms
-                + "ms with target CPU usage of " + targetCPUpercent + "%");
-        if (isAutoSizeAdjustmentAllowed()) {
-            System.out.println(" and automtic load size adjustment");
+        if (commandLineGroup.isOpenLoop()) {
+            System.out.println("Open loop: " + requestsPerSecond + " requests/s"
+                    + (requestBurstSize > 1 ? " in bursts of " + requestBurstSize : "")
+                    + " each using " + requestCostDistribution.getOptionName() + " distributed "
+                    + requestCost_us + "us mean CPU time.");
+        }
+        System.out.print("Monitoring displayed every " + monitorWait_ms + "ms");
+        if (commandLineGroup.isOpenLoop()) {
+            // The request rate, not a target CPU, sets the load
+            System.out.println(".");
+        } else if (autoSizeAdjustmentAllowed) {
+            System.out.println(" with target CPU usage of " + targetCPUpercent + "%"
+                    + " and automtic load size adjustment");
         } else {
-            System.out.println(". Load size is constant.");
+            System.out.println(" with target CPU usage of " + targetCPUpercent + "%"
+                    + ". Load size is constant.");
         }
 
-        monitorThread = new Thread(new MonitorThread(targetCPUpercent));
-        loadThreads = new ArrayList<ThrashThread>(nThreads);
+        commandLineGroup.start();
+        setGroups(Collections.singletonList(commandLineGroup));
 
         monitorThread.start();
 
-        for (int i = 0; i < nThreads; i++) {
-            ThrashThread t = new ThrashThread();
-            loadThreads.add(t);
-            t.setPriority(t.getPriority() - 1); // minimise system killing ability?
-            t.setDaemon(false); // slower exit - but everything is forced killed
-            t.start();
-        }
-
         System.out.println();
         System.out.println("All threads started.");
     }
@@ -340,7 +442,18 @@ public final class CPUhog {
                 + "          the application can achieve will be determined by the size of load\n"
                 + "          and the speed of CPU.  This also relies on the JVM / OS to spread the\n"
                 + "          total load evenly (although this may be what you are testing!)\n"
-                + "\n" + " -q       Supress logging information.\n" + "\n");
+                + "\n" + " -q       Supress logging information.\n" + "\n"
+                + " -r nnn   Open loop mode.  Generate nnn requests per second that are executed\n"
+                + "          by a pool of -t worker threads, queueing if the workers are busy.\n"
+                + "          Response times are measured from when each request should arrive.\n"
+                + "          Cannot be used with -a or -c.\n"
+                + " -rc nnn  Mean CPU time (us) used by each request (default 1000).\n"
+                + " -rd dist Distribution of request CPU time: fixed, exp (default) or uniform.\n"
+                + " -rb nnn  Requests arrive in bursts of nnn (default 1).\n"
+                + " -rq nnn  Most requests queued waiting for a worker (default 100000).\n"
+                + "          Requests arriving when the queue is full are dropped.\n" + "\n"
+                + " -f file  Run the phases and assertions of a scenario file.  The other\n"
+                + "          options give the defaults for each group in the scenario.\n" + "\n");
     }
 
     private static void dumpSystemInformation() {
@@ -371,6 +484,10 @@ public final class CPUhog {
             System.out.println("Architecture: " + operatingSystemMXBean.getArch());
             System.out.println(
                     "Available processors: " + operatingSystemMXBean.getAvailableProcessors());
+            System.out.println("Energy counters: " + (powerMonitor.isEnergyAvailable()
+                    ? powerMonitor.getEnergyDomainCount() + " domain(s)" : NOT_SUPPORTED));
+            System.out.println("Thermal zones: " + (powerMonitor.isThermalAvailable()
+                    ? powerMonitor.getThermalZoneCount() + " zone(s)" : NOT_SUPPORTED));
             System.out.println();
         }
 
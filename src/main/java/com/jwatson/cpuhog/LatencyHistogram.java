@@ -0,0 +1,112 @@
+package com.jwatson.cpuhog;
+
+/**
+ * A histogram of times (ns) with logarithmic buckets. Each power of two range is split into
+ * SUB_BUCKETS linear buckets so recorded values are kept to within about 6%. This allows
+ * percentiles to be reported without keeping every sample.
+ *
+ * Recording is thread safe. The monitor takes a copy of the histogram, resetting it, at the end of
+ * each logging period.
+ *
+ * @author jim
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int N_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final double PERCENT_100 = 100.0;
+
+    private long[] counts = new long[N_BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * Add a time to the histogram. Negative times are recorded as zero.
+     *
+     * @param value_ns The time to record
+     */
+    @SuppressWarnings("checkstyle:parametername")
+    public synchronized void record(long value_ns) {
+        long v = Math.max(0, value_ns);
+        counts[bucketIndex(v)]++;
+        count++;
+        sum += v;
+        max = Math.max(max, v);
+    }
+
+    /**
+     * Return a copy of this histogram and clear this one ready for the next period.
+     *
+     * @return the values recorded since the last call
+     */
+    public synchronized LatencyHistogram copyAndReset() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.counts = counts;
+        copy.count = count;
+        copy.sum = sum;
+        copy.max = max;
+        counts = new long[N_BUCKETS];
+        count = 0;
+        sum = 0;
+        max = 0;
+        return copy;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the mean value, or -1 if nothing has been recorded
+     */
+    public synchronized double getMean() {
+        return count == 0 ? -1 : (double) sum / count;
+    }
+
+    /**
+     * Return the value below which the given percentage of the recorded values fall. The upper
+     * bound of the bucket is used so the result errs on the high side.
+     *
+     * @param percentile 0 to 100
+     * @return the value, or -1 if nothing has been recorded
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(count * percentile / PERCENT_100);
+        rank = Math.max(1, Math.min(count, rank));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, bucketUpperBound(i));
+            }
+        }
+        return max;
+    }
+
+    private static int bucketIndex(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(v)) - SUB_BUCKET_BITS;
+        int sub = (int) (v >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
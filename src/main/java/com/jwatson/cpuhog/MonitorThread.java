@@ -2,6 +2,9 @@ package com.jwatson.cpuhog;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A thread to monitor the running load threads and adjust as necessary.
@@ -10,17 +13,20 @@ public final class MonitorThread implements Runnable {
 
     private static final int K = 1024;
     private static final double PERCENT_100 = 100.0;
-    private static final double MS_PER_S = 1000.0;
     private static final double NS_PER_S = 1.0e9;
-    private static final double ABOUT_HALFWAY = 0.5;
-    private static final double SMALL_TWEAK = 0.01;
     private static final double NS_PER_MS = 1.0e6;
+    private static final double OPS_PER_MOP = 1.0e6;
+    private static final int READING_WIDTH = 10;
+    private static final int TEMP_WIDTH = 6;
+    private static final int TIME_WIDTH = 8;
+    private static final double PERCENTILE_50 = 50.0;
+    private static final double PERCENTILE_99 = 99.0;
 
     private static ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
-    private int targetCPUpercent;
+    private PowerMonitor powerMonitor;
 
-    MonitorThread(int targetCPUpercent) {
-        this.targetCPUpercent = targetCPUpercent;
+    MonitorThread(PowerMonitor powerMonitor) {
+        this.powerMonitor = powerMonitor;
     }
 
     /**
@@ -37,16 +43,40 @@ public final class MonitorThread implements Runnable {
 
         long startTime = System.nanoTime();
         Object obj = new Object();
-        long totalUserTime = 0;
-        long totalCPUTime = 0;
+        Map<Long, long[]> threadTimes = new HashMap<Long, long[]>();
         long sysTime = 0;
+        // The first period has no previous sample, so its energy readings are not available
+        boolean havePreviousSample = false;
+        double totalEnergy_J = powerMonitor.getTotalEnergy_J();
+        boolean showEnergy = powerMonitor.isEnergyAvailable();
+        boolean showThermal = powerMonitor.isThermalAvailable();
         while (true) {
-            if (CPUhog.isGenerateLogging()) {
-                System.out.println(
+            // The titles are re-printed when a scenario moves to the next phase. Nothing is shown
+            // between phases, or before the first, when there are no groups running
+            List<WorkloadGroup> groups = CPUhog.getGroups();
+            boolean showRows = CPUhog.isGenerateLogging() && !groups.isEmpty();
+            if (showRows) {
+                StringBuilder title = new StringBuilder(
                         "Time /s Threads CPUs   Free KBs  Total KBs    Max KBs  %CPU User %CPU Total "
-                                + "%CPU / CPU ExeTime/ms Ld Wait/ms vSize");
+                                + "%CPU / CPU");
+                for (WorkloadGroup group : groups) {
+                    if (CPUhog.isScenario()) {
+                        String name = group.getName();
+                        title.append(String.format(" %10s",
+                                name.length() > READING_WIDTH ? name.substring(0, READING_WIDTH)
+                                        : name));
+                    }
+                    title.append(" ExeTime/ms Ld Wait/ms vSize");
+                    if (group.isOpenLoop()) {
+                        title.append("      Req/s  Queue  Drops"
+                                + "   Svc/ms   p50/ms   p99/ms   Max/ms");
+                    }
+                }
+                title.append(showEnergy ? "      Watts     MOps/J" : "");
+                title.append(showThermal ? " Temp/C" : "");
+                System.out.println(title);
             }
-            for (int i = 0; i < CPUhog.ITERSPERTITLE; i++) {
+            for (int i = 0; i < CPUhog.ITERSPERTITLE && groups == CPUhog.getGroups(); i++) {
                 // Get the threads in the current thread group into an array
                 // May take a few goes to get a big enough array if
                 // the number is very rapidly increasing
@@ -59,94 +89,96 @@ public final class MonitorThread implements Runnable {
 
 
                 // interrogate all the threads in the thread group to
-                // determine the total amount of CPU time they have all used
-                long newTotalUserTime = 0;
-                long newTotalCPUTime = 0;
+                // determine the amount of CPU time they have all used since last time.
+                // Threads are compared individually as threads come and go between
+                // scenario phases
+                long userTimeDelta = 0;
+                long cpuTimeDelta = 0;
+                Map<Long, long[]> newThreadTimes = new HashMap<Long, long[]>();
                 long newSysTime = System.nanoTime();
                 for (int iThread = 0; iThread < nThreads; iThread++) {
                     long tid = threads[iThread].getId();
-                    newTotalUserTime += threadMXBean.getThreadUserTime(tid);
-                    newTotalCPUTime += threadMXBean.getThreadCpuTime(tid);
+                    long[] times = {threadMXBean.getThreadUserTime(tid),
+                        threadMXBean.getThreadCpuTime(tid)};
+                    if (times[0] < 0 || times[1] < 0) {
+                        continue;
+                    }
+                    long[] lastTimes = threadTimes.get(tid);
+                    userTimeDelta += times[0] - (lastTimes == null ? 0 : lastTimes[0]);
+                    cpuTimeDelta += times[1] - (lastTimes == null ? 0 : lastTimes[1]);
+                    newThreadTimes.put(tid, times);
                 }
                 newSysTime = (newSysTime + System.nanoTime()) / 2;
 
-                // interrogate only the load threads to
-                // get an average time to perform the load within
-                // the main thread loop
-                long sumExecuteTime = 0;
-                int nLoadThreads = 0;
-                for (ThrashThread t : CPUhog.getLoadThreads()) {
-                    if (t.getLoadExecuteTime_ns() > 0) {
-                        sumExecuteTime += t.getLoadExecuteTime_ns();
-                        nLoadThreads++;
-                    }
-                }
-                if (nLoadThreads == 0) {
-                    sumExecuteTime = -1;
-                    nLoadThreads = 1;
-                }
-                // Vector size may be adjusted if the load is running too
-                // fast or too slow.
-                // The target is to have the load run LOADRUNSPERLOG_TARGET times
-                // within the logging time
-                // i.e. N * (load + load_wait) = logging_time
-                //
-                // In practice the size is adjusted to bring the number of iterations
-                // achieved between ..._LO and ..._HI limits
                 double timeDelta_ns = newSysTime - sysTime;
-                double percentUserTime =
-                        PERCENT_100 * (newTotalUserTime - totalUserTime) / timeDelta_ns;
-                double percentCPUTime =
-                        PERCENT_100 * (newTotalCPUTime - totalCPUTime) / timeDelta_ns;
+                double percentUserTime = PERCENT_100 * userTimeDelta / timeDelta_ns;
+                double percentCPUTime = PERCENT_100 * cpuTimeDelta / timeDelta_ns;
                 double perProcessorPercentCPU = percentCPUTime / rt.availableProcessors();
-                double aveLoadExecuteTime_ns = sumExecuteTime / nLoadThreads;
-
-                if (CPUhog.isAutoSizeAdjustmentAllowed() && sumExecuteTime > 0) {
-                    // for this loop time work out how many times this theoretically ought
-                    // to run if the loop wait time were perfect
-                    double runTimesPerLog = (CPUhog.getMonitorWait_ms() / MS_PER_S)
-                            * (targetCPUpercent / PERCENT_100) / (aveLoadExecuteTime_ns / NS_PER_S);
-                    // Now adjust - about halfway to the correct value if outside the
-                    // HI/LO tolerance - otherwise just tweak a bit
-                    if (runTimesPerLog < CPUhog.LOADRUNSPERLOG_LO) {
-                        CPUhog.setLoadSize(adjustedLoadSize(runTimesPerLog, ABOUT_HALFWAY));
-                    } else if (runTimesPerLog > CPUhog.LOADRUNSPERLOG_HI) {
-                        CPUhog.setLoadSize(adjustedLoadSize(runTimesPerLog, ABOUT_HALFWAY));
-                    } else {
-                        CPUhog.setLoadSize(adjustedLoadSize(runTimesPerLog, SMALL_TWEAK));
+
+                // Each group adjusts its own load towards its own target CPU
+                StringBuilder groupColumns = new StringBuilder();
+                long periodLoadOps = 0;
+                for (WorkloadGroup group : groups) {
+                    group.update(CPUhog.getMonitorWait_ms());
+                    periodLoadOps += group.getPeriodLoadOps();
+
+                    if (CPUhog.isScenario()) {
+                        groupColumns.append(String.format(" %10.3f", group.getPercentCPU()));
+                    }
+                    groupColumns.append(String.format(" %s %s %5d",
+                            formatExecuteTime_ms(group.getAveLoadExecuteTime_ns()),
+                            formatWaitTime_ms(group), group.getLoadSize()));
+
+                    // Request statistics are for the requests completed in this period only
+                    if (group.isOpenLoop()) {
+                        LatencyHistogram service = group.getServiceTimes().copyAndReset();
+                        LatencyHistogram response = group.getResponseTimes().copyAndReset();
+                        groupColumns.append(String.format(" %10.1f %6d %6d %s %s %s %s",
+                                response.getCount() / (timeDelta_ns / NS_PER_S),
+                                group.getRequestGenerator().getQueueLength(),
+                                group.getPeriodDroppedRequests(),
+                                formatTime_ms(service.getMean()),
+                                formatTime_ms(response.getValueAtPercentile(PERCENTILE_50)),
+                                formatTime_ms(response.getValueAtPercentile(PERCENTILE_99)),
+                                formatTime_ms(response.getCount() > 0 ? response.getMax() : -1)));
                     }
                 }
 
-                // Adjust the wait time used in the load threads to give
-                // the target CPU load
-                if (targetCPUpercent < PERCENT_100) {
-                    // double theoreticLoadWaitTime_ns = aveLoadExecuteTime_ns
-                    // * (100. - targetCPUpercent) / targetCPUpercent;
-                    double correctedLoadWaitTime_ns =
-                            (aveLoadExecuteTime_ns + CPUhog.getLoadWaitTime_ms() * NS_PER_MS)
-                                    * perProcessorPercentCPU / targetCPUpercent
-                                    - aveLoadExecuteTime_ns;
-                    // CPUhog.loadWaitTime_ms =
-                    // (int) (CPUhog.loadWaitTime_ms * (1.0 - CPUhog.LOADWAITDAMPING) +
-                    // (theoreticalLoadWaitTime_ns / 1.0e6) * CPUhog.LOADWAITDAMPING);
-                    CPUhog.setLoadWaitTime_ms((int) (CPUhog.getLoadWaitTime_ms()
-                            * (1.0 - CPUhog.LOADWAITDAMPING)
-                            + (correctedLoadWaitTime_ns / NS_PER_MS) * CPUhog.LOADWAITDAMPING));
+                // The energy counters cover the whole processor package, not just this
+                // process, so ops per joule is only meaningful on an otherwise idle host
+                String energyColumns = "";
+                if (showEnergy) {
+                    double newTotalEnergy_J = powerMonitor.getTotalEnergy_J();
+                    double energy_J = newTotalEnergy_J - totalEnergy_J;
+                    double watts = -1;
+                    double mopsPerJoule = -1;
+                    if (havePreviousSample && totalEnergy_J >= 0 && energy_J > 0) {
+                        watts = energy_J / (timeDelta_ns / NS_PER_S);
+                        mopsPerJoule = periodLoadOps / OPS_PER_MOP / energy_J;
+                    }
+                    totalEnergy_J = newTotalEnergy_J;
+                    energyColumns = " " + formatReading(watts, READING_WIDTH) + " "
+                            + formatReading(mopsPerJoule, READING_WIDTH);
+                }
+                String thermalColumns = "";
+                if (showThermal) {
+                    thermalColumns = " " + formatReading(powerMonitor.sampleMaxTemperature_C(),
+                            TEMP_WIDTH);
                 }
 
-                if (CPUhog.isGenerateLogging()) {
+                if (showRows) {
                     System.out.println(String.format(
-                            "%7.3f %7d %4d %10d %10d %10d %10.3f %10.3f %10.3f %10.3f %10d %5d",
+                            "%7.3f %7d %4d %10d %10d %10d %10.3f %10.3f %10.3f",
                             (newSysTime - startTime) / NS_PER_S, tg.activeCount(),
                             rt.availableProcessors(), rt.freeMemory() / K, rt.totalMemory() / K,
                             rt.maxMemory() / K, percentUserTime, percentCPUTime,
-                            perProcessorPercentCPU, aveLoadExecuteTime_ns / NS_PER_MS,
-                            CPUhog.getLoadWaitTime_ms(), CPUhog.getLoadSize()));
+                            perProcessorPercentCPU) + groupColumns + energyColumns
+                            + thermalColumns);
                 }
 
-                totalUserTime = newTotalUserTime;
-                totalCPUTime = newTotalCPUTime;
+                threadTimes = newThreadTimes;
                 sysTime = newSysTime;
+                havePreviousSample = true;
 
                 if (CPUhog.getMonitorWait_ms() > 0) {
                     synchronized (obj) {
@@ -161,22 +193,49 @@ public final class MonitorThread implements Runnable {
     }
 
     /**
-     * Return a new load sizing based on a theoretic estimate of load required to achieve target
-     * loop time. The estimate is allowed to be as small as necessary - however the upper bound is
-     * limited to twice the current value.
-     *
-     * @param factor Value of 1.0 returns the estimate; value 0.0 returns the original loadSizing
-     *        value.
-     * @return The factored and limited estimate
+     * Format an optional reading into a fixed width column. Readings that are negative or NaN are
+     * not available and are shown as '-'.
+     */
+    private static String formatReading(double value, int width) {
+        if (Double.isNaN(value) || value < 0) {
+            return String.format("%" + width + "s", "-");
+        }
+        return String.format("%" + width + ".1f", value);
+    }
+
+    /**
+     * Format the load execute time (ns) as ms into the ExeTime column. Negative times are not
+     * available (no load has completed yet, or the group is open loop) and are shown as '-'.
      */
-    private int adjustedLoadSize(double currentLoadRunsPerLog, double factor) {
-        double scale = currentLoadRunsPerLog / CPUhog.LOADRUNSPERLOG_TARGET;
-        double estimate = CPUhog.getLoadSize() * scale * scale;
+    @SuppressWarnings("checkstyle:methodname")
+    private static String formatExecuteTime_ms(double time_ns) {
+        if (time_ns < 0) {
+            return String.format("%" + READING_WIDTH + "s", "-");
+        }
+        return String.format("%" + READING_WIDTH + ".3f", time_ns / NS_PER_MS);
+    }
 
-        if (estimate > CPUhog.getLoadSize()) {
-            estimate = Math.min(estimate, CPUhog.getLoadSize() * 2.);
+    /**
+     * Format the load wait time of a group into the Ld Wait column. Open loop groups do not wait
+     * between loads so the wait is shown as '-'.
+     */
+    @SuppressWarnings("checkstyle:methodname")
+    private static String formatWaitTime_ms(WorkloadGroup group) {
+        if (group.isOpenLoop()) {
+            return String.format("%" + READING_WIDTH + "s", "-");
+        }
+        return String.format("%" + READING_WIDTH + ".3f", group.getLoadWaitTime_ms());
+    }
+
+    /**
+     * Format an optional time (ns) as ms into a fixed width column. Negative times are not
+     * available and are shown as '-'.
+     */
+    @SuppressWarnings("checkstyle:methodname")
+    private static String formatTime_ms(double time_ns) {
+        if (time_ns < 0) {
+            return String.format("%" + TIME_WIDTH + "s", "-");
         }
-        int newLoad = (int) (estimate * factor + CPUhog.getLoadSize() * (1. - factor));
-        return newLoad;
+        return String.format("%" + TIME_WIDTH + ".3f", time_ns / NS_PER_MS);
     }
 }
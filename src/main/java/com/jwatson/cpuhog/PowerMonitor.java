@@ -0,0 +1,237 @@
+package com.jwatson.cpuhog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads energy and temperature information from the Linux sysfs so that the monitor can report the
+ * power cost of the load alongside the CPU usage.
+ *
+ * Energy comes from the RAPL (Running Average Power Limit) counters exposed by the powercap
+ * framework under /sys/class/powercap. Only the top level domains whose name is 'package-N' are
+ * summed as the sub-domains (core, uncore, dram) are already included in their package. Some Intel
+ * parts also have a top level 'psys' (platform) domain that includes the packages; it is only used
+ * if there are no package domains, so energy is never counted twice. The kernel exposes AMD
+ * processors through the same 'intel-rapl' powercap driver; older kernels may instead provide the
+ * 'amd_energy' hwmon driver whose per socket counters are used if no powercap domains are found.
+ *
+ * Temperature comes from the 'temp' file of each /sys/class/thermal/thermal_zoneN directory and the
+ * hottest zone is reported.
+ *
+ * The energy total may be read from more than one thread.
+ *
+ * Any of these files may be missing (not Linux, running in a container or VM) or unreadable (the
+ * RAPL counters are normally root only). In that case the corresponding reading is simply not
+ * available and the rest of the application is unaffected.
+ *
+ * @author jim
+ */
+@SuppressWarnings({"checkstyle:membername", "checkstyle:localvariablename"})
+public final class PowerMonitor {
+
+    private static final String POWERCAP_DIR = "/sys/class/powercap";
+    private static final String HWMON_DIR = "/sys/class/hwmon";
+    private static final String THERMAL_DIR = "/sys/class/thermal";
+    private static final double UJ_PER_J = 1.0e6;
+    private static final double MILLIDEGREES_PER_DEGREE = 1000.0;
+
+    /** Energy counter files (micro joules) and their wrap around values (0 if unknown). */
+    private final List<File> energyFiles = new ArrayList<File>();
+    private final List<Long> energyRanges = new ArrayList<Long>();
+    /** Temperature files (milli degrees C). */
+    private final List<File> thermalFiles = new ArrayList<File>();
+
+    /** Last energy reading of each counter. Used to form deltas. */
+    private long[] lastEnergy_uj;
+    /** Energy used across all counters since construction. */
+    private long total_uj;
+    private boolean anyEnergyRead;
+
+    /**
+     * Find the available energy and thermal sensors. Sensors that cannot be read now are ignored.
+     */
+    public PowerMonitor() {
+        findPowercapDomains();
+        if (energyFiles.isEmpty()) {
+            findAmdEnergySockets();
+        }
+        findThermalZones();
+
+        lastEnergy_uj = new long[energyFiles.size()];
+        for (int i = 0; i < lastEnergy_uj.length; i++) {
+            lastEnergy_uj[i] = readLong(energyFiles.get(i));
+        }
+    }
+
+    public boolean isEnergyAvailable() {
+        return !energyFiles.isEmpty();
+    }
+
+    public boolean isThermalAvailable() {
+        return !thermalFiles.isEmpty();
+    }
+
+    public int getEnergyDomainCount() {
+        return energyFiles.size();
+    }
+
+    public int getThermalZoneCount() {
+        return thermalFiles.size();
+    }
+
+    /**
+     * Return the energy used (joules) across all domains since construction. Counter wrap around is
+     * allowed for provided this is called more often than the counters wrap (typically many
+     * minutes).
+     *
+     * @return energy in joules, or -1 if no energy counters could be read
+     */
+    public synchronized double getTotalEnergy_J() {
+        for (int i = 0; i < energyFiles.size(); i++) {
+            long now = readLong(energyFiles.get(i));
+            if (now < 0) {
+                continue;
+            }
+            long last = lastEnergy_uj[i];
+            lastEnergy_uj[i] = now;
+            if (last < 0) {
+                continue;
+            }
+            long delta = now - last;
+            if (delta < 0) {
+                long range = energyRanges.get(i);
+                if (range <= 0) {
+                    continue;
+                }
+                delta += range;
+            }
+            total_uj += delta;
+            anyEnergyRead = true;
+        }
+        return anyEnergyRead ? total_uj / UJ_PER_J : -1;
+    }
+
+    /**
+     * Return the temperature of the hottest thermal zone.
+     *
+     * @return temperature in degrees C, or NaN if no thermal zone could be read
+     */
+    public double sampleMaxTemperature_C() {
+        long max = Long.MIN_VALUE;
+        for (File f : thermalFiles) {
+            String s = readLine(f);
+            if (s != null) {
+                try {
+                    max = Math.max(max, Long.parseLong(s));
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+        return max == Long.MIN_VALUE ? Double.NaN : max / MILLIDEGREES_PER_DEGREE;
+    }
+
+    private void findPowercapDomains() {
+        // Top level domains are named like 'intel-rapl:0'; sub-domains 'intel-rapl:0:1'
+        File psys = null;
+        for (File d : listSorted(new File(POWERCAP_DIR))) {
+            String name = d.getName();
+            if (!name.startsWith("intel-rapl:") || name.indexOf(':') != name.lastIndexOf(':')) {
+                continue;
+            }
+            String domain = readLine(new File(d, "name"));
+            if (domain == null) {
+                continue;
+            }
+            if (domain.startsWith("package-")) {
+                addEnergyFile(new File(d, "energy_uj"), new File(d, "max_energy_range_uj"));
+            } else if (domain.equals("psys")) {
+                psys = d;
+            }
+        }
+        if (energyFiles.isEmpty() && psys != null) {
+            addEnergyFile(new File(psys, "energy_uj"), new File(psys, "max_energy_range_uj"));
+        }
+    }
+
+    private void findAmdEnergySockets() {
+        for (File d : listSorted(new File(HWMON_DIR))) {
+            if (!"amd_energy".equals(readLine(new File(d, "name")))) {
+                continue;
+            }
+            // Only the socket counters - the per core ones are included in those
+            for (File f : listSorted(d)) {
+                String name = f.getName();
+                if (name.startsWith("energy") && name.endsWith("_label")) {
+                    String label = readLine(f);
+                    if (label != null && label.startsWith("Esocket")) {
+                        String input = name.substring(0, name.length() - "_label".length())
+                                + "_input";
+                        addEnergyFile(new File(d, input), null);
+                    }
+                }
+            }
+        }
+    }
+
+    private void findThermalZones() {
+        for (File d : listSorted(new File(THERMAL_DIR))) {
+            if (d.getName().startsWith("thermal_zone")) {
+                File f = new File(d, "temp");
+                if (readLine(f) != null) {
+                    thermalFiles.add(f);
+                }
+            }
+        }
+    }
+
+    private void addEnergyFile(File energy, File range) {
+        if (readLong(energy) >= 0) {
+            energyFiles.add(energy);
+            energyRanges.add(range == null ? 0L : readLong(range));
+        }
+    }
+
+    private static File[] listSorted(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long readLong(File f) {
+        String s = readLine(f);
+        if (s == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readLine(File f) {
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(f));
+            String s = r.readLine();
+            return s == null ? null : s.trim();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.jwatson.cpuhog;
+
+/**
+ * A single unit of work generated by the {@link RequestGenerator} and executed by a
+ * {@link RequestWorker}.
+ *
+ * @author jim
+ */
+@SuppressWarnings("checkstyle:membername")
+public final class Request {
+
+    /** When (System.nanoTime) the request should have started if there were no queueing. */
+    private final long intendedStart_ns;
+    /** The amount of CPU time the request should consume. */
+    private final long cost_ns;
+
+    Request(long intendedStart_ns, long cost_ns) {
+        this.intendedStart_ns = intendedStart_ns;
+        this.cost_ns = cost_ns;
+    }
+
+    public long getIntendedStart_ns() {
+        return intendedStart_ns;
+    }
+
+    public long getCost_ns() {
+        return cost_ns;
+    }
+}
@@ -0,0 +1,151 @@
+package com.jwatson.cpuhog;
+
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates requests for the {@link RequestWorker}s at a target rate - an 'open loop' load. Unlike
+ * the {@link ThrashThread}s the arrival of new work does not wait for earlier work to finish, so
+ * when the workers cannot keep up the requests queue and the response times show it.
+ *
+ * Arrivals are a Poisson process. If a burst size greater than one is given the requests arrive in
+ * bursts of that many at once, the bursts themselves being a Poisson process with the rate reduced
+ * to keep the same average request rate.
+ *
+ * Each request is stamped with the time it was intended to arrive rather than the time it was
+ * actually queued. If this thread is delayed it catches up by queueing the overdue requests
+ * immediately, so response times are not understated (no 'coordinated omission').
+ *
+ * The queue is limited in length so that running well beyond saturation cannot exhaust the heap.
+ * Requests arriving when the queue is full are dropped and counted.
+ *
+ * The thread finishes when its group is stopped.
+ *
+ * @author jim
+ */
+public final class RequestGenerator extends Thread {
+
+    private static final double NS_PER_S = 1.0e9;
+
+    /**
+     * The distributions that the CPU cost of each request can be drawn from.
+     */
+    public enum CostDistribution {
+        /** Every request has the mean cost. */
+        FIXED("fixed"),
+        /** Exponentially distributed cost - many cheap requests and a few expensive ones. */
+        EXPONENTIAL("exp"),
+        /** Uniformly distributed between zero and twice the mean. */
+        UNIFORM("uniform");
+
+        private final String optionName;
+
+        CostDistribution(String optionName) {
+            this.optionName = optionName;
+        }
+
+        public String getOptionName() {
+            return optionName;
+        }
+
+        /**
+         * Find the distribution given its command line name.
+         *
+         * @param name as used on the command line
+         * @return the distribution
+         * @throws IllegalArgumentException if the name is not recognised
+         */
+        public static CostDistribution fromOptionName(String name) {
+            for (CostDistribution d : values()) {
+                if (d.optionName.equals(name)) {
+                    return d;
+                }
+            }
+            throw new IllegalArgumentException("unknown cost distribution: " + name);
+        }
+
+        double sample(double mean, Random random) {
+            switch (this) {
+                case EXPONENTIAL:
+                    return -Math.log(1.0 - random.nextDouble()) * mean;
+                case UNIFORM:
+                    return 2.0 * mean * random.nextDouble();
+                default:
+                    return mean;
+            }
+        }
+    }
+
+    private final WorkloadGroup group;
+    private final BlockingQueue<Request> queue;
+    private final Random random = new Random();
+    private final double requestsPerSecond;
+    private final int burstSize;
+    private final double meanCost_ns;
+    private final CostDistribution costDistribution;
+    /** Requests not queued because the queue was full. */
+    private volatile long droppedRequests;
+
+    /**
+     * @param group the group whose workers execute the requests
+     * @param requestsPerSecond average arrival rate
+     * @param burstSize number of requests arriving together (1 for simple Poisson arrivals)
+     * @param meanCost_ns mean CPU time each request should consume
+     * @param costDistribution distribution of the CPU time about the mean
+     * @param maxQueueLength the most requests that may wait for a worker
+     */
+    @SuppressWarnings("checkstyle:parametername")
+    RequestGenerator(WorkloadGroup group, double requestsPerSecond, int burstSize,
+            double meanCost_ns, CostDistribution costDistribution, int maxQueueLength) {
+        this.group = group;
+        this.queue = new LinkedBlockingQueue<Request>(maxQueueLength);
+        this.requestsPerSecond = requestsPerSecond;
+        this.burstSize = burstSize;
+        this.meanCost_ns = meanCost_ns;
+        this.costDistribution = costDistribution;
+    }
+
+    /**
+     * The queue the workers should take requests from.
+     */
+    public BlockingQueue<Request> getQueue() {
+        return queue;
+    }
+
+    /**
+     * The number of requests that have arrived but not yet been started by a worker.
+     */
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * The number of requests dropped so far because the queue was full.
+     */
+    public long getDroppedRequests() {
+        return droppedRequests;
+    }
+
+    @Override
+    public void run() {
+        double meanBurstInterval_ns = burstSize * NS_PER_S / requestsPerSecond;
+        long next_ns = System.nanoTime();
+        while (!group.isStopped()) {
+            next_ns += (long) CostDistribution.EXPONENTIAL.sample(meanBurstInterval_ns, random);
+
+            long delay_ns;
+            while ((delay_ns = next_ns - System.nanoTime()) > 0 && !group.isStopped()) {
+                LockSupport.parkNanos(delay_ns);
+            }
+
+            for (int i = 0; i < burstSize; i++) {
+                if (!queue.offer(new Request(next_ns,
+                        (long) costDistribution.sample(meanCost_ns, random)))) {
+                    droppedRequests++;
+                }
+            }
+        }
+    }
+}
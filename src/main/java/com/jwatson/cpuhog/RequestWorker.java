@@ -0,0 +1,125 @@
+package com.jwatson.cpuhog;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * One of a pool of threads executing the requests created by a {@link RequestGenerator}. Each
+ * request runs part of the same convolution used by the {@link ThrashThread}s, enough of it to use
+ * the CPU time the request asks for.
+ *
+ * The amount of convolution per nanosecond of CPU is learnt as the worker runs by timing each
+ * request with the thread CPU clock, so time lost to other threads does not distort it.
+ *
+ * The service time (start to finish of execution) and the response time (intended arrival to
+ * finish, so including any queueing) of every request are recorded by the group. The thread
+ * finishes when its group is stopped.
+ *
+ * @author jim
+ */
+@SuppressWarnings("checkstyle:membername")
+public final class RequestWorker extends Thread {
+
+    private static final int A_FEW_TIMES = 100;
+    /** Output points convolved at a time while making the first speed estimate. */
+    private static final int CALIBRATION_POINTS = 1000;
+    /** Least CPU time to spend on the first speed estimate, to beat the CPU clock resolution. */
+    private static final long CALIBRATION_CPU_NS = 1000000;
+    /** Proportion of each new measurement averaged into the convolution speed estimate. */
+    private static final double SPEED_DAMPING = 0.1;
+
+    private static ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    /** The group this worker belongs to and takes its requests from. */
+    private final WorkloadGroup group;
+
+    /** Convolution output points computed per ns of CPU time. */
+    private double pointsPerCpu_ns;
+    private volatile long loadOps;
+
+    RequestWorker(WorkloadGroup group) {
+        this.group = group;
+    }
+
+    public long getLoadOps() {
+        return loadOps;
+    }
+
+    @Override
+    public void run() {
+        double[] coefs = new double[group.getLoadSize()];
+        double[] signal = new double[coefs.length * CPUhog.SIGNAL_FACTOR];
+        int lastOff = signal.length - coefs.length;
+
+        ThrashThread.fillCoefs(coefs);
+        ThrashThread.randomiseSignal(signal);
+
+        // Initial estimate of the speed from a short slice, refined as the requests run, so the
+        // worker starts taking requests quickly however large the load size
+        int off = 0;
+        int passes = 0;
+        long calibrationPoints = 0;
+        long cpu0 = cpuTime();
+        long cpu;
+        do {
+            int n = Math.min(CALIBRATION_POINTS, lastOff - off);
+            ThrashThread.convolve(coefs, signal, off, off + n);
+            calibrationPoints += n;
+            off += n;
+            if (off == lastOff) {
+                off = 0;
+                passes++;
+            }
+        } while ((cpu = cpuTime() - cpu0) < CALIBRATION_CPU_NS && !group.isStopped());
+        pointsPerCpu_ns = (double) calibrationPoints / Math.max(1, cpu);
+
+        while (!group.isStopped()) {
+            Request request;
+            try {
+                request = group.getRequestGenerator().getQueue().take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+
+            long points = Math.max(1, Math.round(request.getCost_ns() * pointsPerCpu_ns));
+            long start = System.nanoTime();
+            cpu0 = cpuTime();
+
+            for (long remaining = points; remaining > 0;) {
+                int n = (int) Math.min(remaining, lastOff - off);
+                ThrashThread.convolve(coefs, signal, off, off + n);
+                remaining -= n;
+                off += n;
+                if (off == lastOff) {
+                    off = 0;
+                    passes++;
+                }
+            }
+
+            cpu = cpuTime() - cpu0;
+            long end = System.nanoTime();
+            group.recordRequest(end - start, end - request.getIntendedStart_ns());
+            loadOps += points * coefs.length;
+
+            if (cpu > 0) {
+                pointsPerCpu_ns = pointsPerCpu_ns * (1.0 - SPEED_DAMPING)
+                        + SPEED_DAMPING * points / cpu;
+            }
+            // Stop the signal values getting too big - outside the timed part
+            if (passes >= A_FEW_TIMES) {
+                ThrashThread.randomiseSignal(signal);
+                passes = 0;
+            }
+        }
+    }
+
+    /**
+     * CPU time used by this thread. Falls back to elapsed time if CPU time is not available.
+     */
+    private static long cpuTime() {
+        long t = threadMXBean.isCurrentThreadCpuTimeSupported()
+                ? threadMXBean.getCurrentThreadCpuTime()
+                : -1;
+        return t >= 0 ? t : System.nanoTime();
+    }
+}
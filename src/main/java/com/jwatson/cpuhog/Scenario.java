@@ -0,0 +1,539 @@
+package com.jwatson.cpuhog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A test plan read from a scenario file. The scenario is a sequence of phases, each running one or
+ * more {@link WorkloadGroup}s at the same time for a fixed duration. All the phases run in the same
+ * JVM so later phases do not have to wait for the JVM to start and the code to be compiled again.
+ *
+ * The file is a java properties file, for example
+ *
+ * <pre>
+ * phases = warmup, mixed
+ *
+ * warmup.duration = 20
+ * warmup.groups = base
+ * warmup.base.threads = 2
+ *
+ * mixed.duration = 60
+ * mixed.settle = 10
+ * mixed.groups = batch, web
+ * mixed.batch.threads = 4
+ * mixed.batch.cpu = 50
+ * mixed.web.threads = 8
+ * mixed.web.rate = 500
+ * mixed.web.cost_us = 800
+ * mixed.assert.latency = web.p99_ms &lt; 20
+ * mixed.assert.power = watts &lt;= 150
+ * </pre>
+ *
+ * Group settings not given in the file take the values given on the command line. Each phase
+ * starts new groups, so the load takes a while to reach its target CPU and the first requests
+ * queue behind the workers starting up. An optional settle time runs the groups before the
+ * duration over which they are measured. At the end of each phase the metrics measured over the
+ * phase are printed and the assertions of the phase are checked. The scenario passes if every
+ * assertion passes.
+ *
+ * @author jim
+ */
+public final class Scenario {
+
+    private static final double MS_PER_S = 1000.0;
+    private static final double NS_PER_S = 1.0e9;
+    private static final double NS_PER_MS = 1.0e6;
+    private static final double OPS_PER_MOP = 1.0e6;
+    private static final double PERCENT_100 = 100.0;
+    private static final double PERCENTILE_50 = 50.0;
+    private static final double PERCENTILE_99 = 99.0;
+    /** How often the temperature is sampled during a phase. */
+    private static final long SAMPLE_WAIT_MS = 1000;
+
+    /** The metrics measured for every group. */
+    private static final String[] GROUP_METRICS = {"cpu", "mops"};
+    /** The metrics measured for open loop groups only. */
+    private static final String[] REQUEST_METRICS =
+        {"rps", "dropped", "svc_ms", "p50_ms", "p99_ms", "max_ms"};
+    /** The metrics measured for the whole system. */
+    private static final String[] SYSTEM_METRICS =
+        {"cpu", "mops", "watts", "mops_per_j", "max_temp_c"};
+
+    /** The settings allowed for each group. */
+    private static final String[] GROUP_SETTINGS =
+        {"threads", "size", "autosize", "cpu", "rate", "cost_us", "cost_dist", "burst", "queue"};
+
+    /**
+     * One phase of the scenario.
+     */
+    static final class Phase {
+        private final String name;
+        private final long duration_ms;
+        /** Time the groups run before the measurement starts. */
+        private final long settle_ms;
+        private final List<WorkloadGroup> groups = new ArrayList<WorkloadGroup>();
+        private final List<Assertion> assertions = new ArrayList<Assertion>();
+
+        @SuppressWarnings("checkstyle:parametername")
+        Phase(String name, long duration_ms, long settle_ms) {
+            this.name = name;
+            this.duration_ms = duration_ms;
+            this.settle_ms = settle_ms;
+        }
+    }
+
+    /**
+     * A check on one of the metrics measured over a phase, of the form 'metric op value' where op
+     * is one of &lt; &lt;= &gt; &gt;=.
+     */
+    static final class Assertion {
+        private final String text;
+        private final String metric;
+        private final String op;
+        private final double value;
+
+        Assertion(String text) {
+            this.text = text.trim();
+            String[] parts = this.text.split("\\s+");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("assertion must be 'metric op value': " + text);
+            }
+            metric = parts[0];
+            op = parts[1];
+            if (!op.equals("<") && !op.equals("<=") && !op.equals(">") && !op.equals(">=")) {
+                throw new IllegalArgumentException("unknown comparison in assertion: " + text);
+            }
+            value = parseDouble(parts[2], text);
+        }
+
+        boolean test(double actual) {
+            if (op.equals("<")) {
+                return actual < value;
+            } else if (op.equals("<=")) {
+                return actual <= value;
+            } else if (op.equals(">")) {
+                return actual > value;
+            } else {
+                return actual >= value;
+            }
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<Phase>();
+
+    private Scenario() {}
+
+    /**
+     * Read a scenario file.
+     *
+     * @param file the scenario properties file
+     * @param defaults the group settings to use where the file does not give them
+     * @return the scenario
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file content is not valid
+     */
+    public static Scenario load(File file, WorkloadGroup defaults) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        Scenario scenario = new Scenario();
+        Map<String, Phase> phasesByName = new HashMap<String, Phase>();
+        for (String phaseName : parseNames(props, "phases")) {
+            if (phasesByName.containsKey(phaseName)) {
+                throw new IllegalArgumentException("phase named twice: " + phaseName);
+            }
+            String durationKey = phaseName + ".duration";
+            double duration_s = parseDouble(require(props, durationKey), durationKey);
+            if (!(duration_s > 0)) {
+                throw new IllegalArgumentException("must have " + durationKey + " > 0");
+            }
+            String settleKey = phaseName + ".settle";
+            double settle_s = parseDouble(props.getProperty(settleKey, "0"), settleKey);
+            if (!(settle_s >= 0)) {
+                throw new IllegalArgumentException("must have " + settleKey + " >= 0");
+            }
+            Phase phase = new Phase(phaseName, (long) (duration_s * MS_PER_S),
+                    (long) (settle_s * MS_PER_S));
+            for (String groupName : parseNames(props, phaseName + ".groups")) {
+                if (groupName.equals("assert")) {
+                    throw new IllegalArgumentException("a group cannot be named 'assert'");
+                }
+                for (WorkloadGroup g : phase.groups) {
+                    if (g.getName().equals(groupName)) {
+                        throw new IllegalArgumentException("group named twice: " + groupName);
+                    }
+                }
+                phase.groups.add(createGroup(props, phaseName + "." + groupName + ".", groupName,
+                        defaults));
+            }
+            phasesByName.put(phaseName, phase);
+            scenario.phases.add(phase);
+        }
+
+        // Check every key so that mistakes do not go unnoticed
+        for (String key : new TreeSet<String>(props.stringPropertyNames())) {
+            if (key.equals("phases")) {
+                continue;
+            }
+            String[] parts = key.split("\\.", 3);
+            Phase phase = phasesByName.get(parts[0]);
+            if (phase == null || parts.length == 1) {
+                throw new IllegalArgumentException("unknown key: " + key);
+            }
+            if (parts.length == 2 && (parts[1].equals("duration") || parts[1].equals("settle")
+                    || parts[1].equals("groups"))) {
+                continue;
+            }
+            if (parts.length == 3 && parts[1].equals("assert")) {
+                phase.assertions.add(new Assertion(props.getProperty(key)));
+                continue;
+            }
+            if (parts.length != 3 || !isGroupSetting(phase, parts[1], parts[2])) {
+                throw new IllegalArgumentException("unknown key: " + key);
+            }
+        }
+
+        // Likewise the metric names in the assertions
+        for (Phase phase : scenario.phases) {
+            Set<String> metrics = metricNames(phase);
+            for (Assertion a : phase.assertions) {
+                if (!metrics.contains(a.metric)) {
+                    throw new IllegalArgumentException(
+                            "unknown metric in assertion of phase " + phase.name + ": " + a.text);
+                }
+            }
+        }
+        return scenario;
+    }
+
+    /**
+     * Run each phase of the scenario in turn.
+     *
+     * @param powerMonitor source of the energy and temperature metrics
+     * @return true if all the assertions passed
+     */
+    public boolean run(PowerMonitor powerMonitor) {
+        int nAssertions = 0;
+        int nFailed = 0;
+        for (Phase phase : phases) {
+            StringBuilder names = new StringBuilder();
+            for (WorkloadGroup g : phase.groups) {
+                names.append(names.length() == 0 ? "" : ", ").append(g.getName());
+            }
+            System.out.println();
+            System.out.println("Phase " + phase.name + " for " + phase.duration_ms / MS_PER_S
+                    + "s" + (phase.settle_ms > 0 ? " after " + phase.settle_ms / MS_PER_S
+                            + "s settle" : "") + " running " + names);
+
+            for (WorkloadGroup g : phase.groups) {
+                g.start();
+            }
+            CPUhog.setGroups(Collections.unmodifiableList(phase.groups));
+
+            Map<String, Double> metrics = measure(phase, powerMonitor);
+
+            CPUhog.setGroups(Collections.<WorkloadGroup>emptyList());
+            for (WorkloadGroup g : phase.groups) {
+                g.stop();
+            }
+
+            System.out.println("Phase " + phase.name + " results");
+            for (Map.Entry<String, Double> e : metrics.entrySet()) {
+                System.out.println(String.format("  %-20s %12.3f", e.getKey(), e.getValue()));
+            }
+            for (Assertion a : phase.assertions) {
+                Double actual = metrics.get(a.metric);
+                boolean passed = actual != null && a.test(actual);
+                nAssertions++;
+                if (!passed) {
+                    nFailed++;
+                }
+                System.out.println((passed ? "  PASS " : "  FAIL ") + a.text + " (actual "
+                        + (actual == null ? "not available" : String.format("%.3f", actual))
+                        + ")");
+            }
+        }
+
+        System.out.println();
+        if (nFailed == 0) {
+            System.out.println("Scenario passed (" + nAssertions + " assertions)");
+        } else {
+            System.out.println(
+                    "Scenario FAILED (" + nFailed + " of " + nAssertions + " assertions failed)");
+        }
+        return nFailed == 0;
+    }
+
+    /**
+     * Wait for the phase to complete and return the metrics measured over it, after its settle
+     * time. Group metrics are named 'group.metric'; those for the whole system just 'metric'.
+     * Metrics that could not be measured are left out.
+     */
+    @SuppressWarnings("checkstyle:localvariablename")
+    private static Map<String, Double> measure(Phase phase, PowerMonitor powerMonitor) {
+        sleepUntil(System.nanoTime() + (long) (phase.settle_ms * NS_PER_MS));
+
+        // Everything the groups did while settling is left out of the metrics
+        int nGroups = phase.groups.size();
+        long[] startCpuTime_ns = new long[nGroups];
+        long[] startOps = new long[nGroups];
+        long[] startDropped = new long[nGroups];
+        for (int i = 0; i < nGroups; i++) {
+            WorkloadGroup g = phase.groups.get(i);
+            startCpuTime_ns[i] = g.getCpuTime_ns();
+            startOps[i] = g.getLoadOps();
+            if (g.isOpenLoop()) {
+                startDropped[i] = g.getRequestGenerator().getDroppedRequests();
+                g.getTotalServiceTimes().copyAndReset();
+                g.getTotalResponseTimes().copyAndReset();
+            }
+        }
+
+        long start_ns = System.nanoTime();
+        long end_ns = start_ns + (long) (phase.duration_ms * NS_PER_MS);
+        double startEnergy_J = powerMonitor.getTotalEnergy_J();
+        double maxTemperature_C = Double.NaN;
+
+        long remaining_ns;
+        while ((remaining_ns = end_ns - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(Math.min(SAMPLE_WAIT_MS, (long) Math.ceil(remaining_ns / NS_PER_MS)));
+            } catch (InterruptedException ex) {
+            }
+            double t = powerMonitor.sampleMaxTemperature_C();
+            if (Double.isNaN(maxTemperature_C) || t > maxTemperature_C) {
+                maxTemperature_C = t;
+            }
+        }
+
+        double elapsed_s = (System.nanoTime() - start_ns) / NS_PER_S;
+        double endEnergy_J = powerMonitor.getTotalEnergy_J();
+        int nProcessors = Runtime.getRuntime().availableProcessors();
+
+        Map<String, Double> metrics = new TreeMap<String, Double>();
+        double totalCPU = 0;
+        long totalOps = 0;
+        for (int i = 0; i < nGroups; i++) {
+            WorkloadGroup g = phase.groups.get(i);
+            String prefix = g.getName() + ".";
+            double cpu = PERCENT_100 * (g.getCpuTime_ns() - startCpuTime_ns[i]) / NS_PER_S
+                    / elapsed_s / nProcessors;
+            long ops = g.getLoadOps() - startOps[i];
+            totalCPU += cpu;
+            totalOps += ops;
+            metrics.put(prefix + "cpu", cpu);
+            metrics.put(prefix + "mops", ops / OPS_PER_MOP / elapsed_s);
+            if (g.isOpenLoop()) {
+                LatencyHistogram service = g.getTotalServiceTimes();
+                LatencyHistogram response = g.getTotalResponseTimes();
+                metrics.put(prefix + "rps", response.getCount() / elapsed_s);
+                metrics.put(prefix + "dropped",
+                        (double) (g.getRequestGenerator().getDroppedRequests() - startDropped[i]));
+                if (response.getCount() > 0) {
+                    metrics.put(prefix + "svc_ms", service.getMean() / NS_PER_MS);
+                    metrics.put(prefix + "p50_ms",
+                            response.getValueAtPercentile(PERCENTILE_50) / NS_PER_MS);
+                    metrics.put(prefix + "p99_ms",
+                            response.getValueAtPercentile(PERCENTILE_99) / NS_PER_MS);
+                    metrics.put(prefix + "max_ms", response.getMax() / NS_PER_MS);
+                }
+            }
+        }
+        metrics.put("cpu", totalCPU);
+        metrics.put("mops", totalOps / OPS_PER_MOP / elapsed_s);
+        if (startEnergy_J >= 0 && endEnergy_J > startEnergy_J) {
+            double energy_J = endEnergy_J - startEnergy_J;
+            metrics.put("watts", energy_J / elapsed_s);
+            metrics.put("mops_per_j", totalOps / OPS_PER_MOP / energy_J);
+        }
+        if (!Double.isNaN(maxTemperature_C)) {
+            metrics.put("max_temp_c", maxTemperature_C);
+        }
+        return metrics;
+    }
+
+    /**
+     * Sleep until the given time.
+     */
+    @SuppressWarnings({"checkstyle:parametername", "checkstyle:localvariablename"})
+    private static void sleepUntil(long end_ns) {
+        long remaining_ns;
+        while ((remaining_ns = end_ns - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep((long) Math.ceil(remaining_ns / NS_PER_MS));
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    /**
+     * Create a group from the settings 'prefix + setting' in the file.
+     */
+    private static WorkloadGroup createGroup(Properties props, String prefix, String name,
+            WorkloadGroup defaults) {
+        WorkloadGroup g = new WorkloadGroup(name, defaults);
+        String key;
+        String value;
+
+        key = prefix + "threads";
+        if ((value = props.getProperty(key)) != null) {
+            g.setThreadCount(parseInt(value, key));
+            if (g.getThreadCount() < 1) {
+                throw new IllegalArgumentException("must have " + key + " >= 1");
+            }
+        }
+        key = prefix + "size";
+        if ((value = props.getProperty(key)) != null) {
+            g.setLoadSize(parseInt(value, key));
+            if (g.getLoadSize() < 1) {
+                throw new IllegalArgumentException("must have " + key + " >= 1");
+            }
+        }
+        key = prefix + "autosize";
+        if ((value = props.getProperty(key)) != null) {
+            g.setAutoSizeAdjustmentAllowed(Boolean.parseBoolean(value.trim()));
+        }
+        key = prefix + "cpu";
+        if ((value = props.getProperty(key)) != null) {
+            g.setTargetCPUpercent(parseInt(value, key));
+            if (g.getTargetCPUpercent() < 1 || g.getTargetCPUpercent() > PERCENT_100) {
+                throw new IllegalArgumentException("must have 1 <= " + key + " <= 100");
+            }
+        }
+        key = prefix + "rate";
+        if ((value = props.getProperty(key)) != null) {
+            g.setRequestsPerSecond(parseDouble(value, key));
+            if (!(g.getRequestsPerSecond() >= 0)) {
+                throw new IllegalArgumentException("must have " + key + " >= 0");
+            }
+        }
+        key = prefix + "cost_us";
+        if ((value = props.getProperty(key)) != null) {
+            g.setRequestCost_us(parseInt(value, key));
+            if (g.getRequestCost_us() < 1) {
+                throw new IllegalArgumentException("must have " + key + " >= 1");
+            }
+        }
+        key = prefix + "cost_dist";
+        if ((value = props.getProperty(key)) != null) {
+            g.setRequestCostDistribution(
+                    RequestGenerator.CostDistribution.fromOptionName(value.trim()));
+        }
+        key = prefix + "burst";
+        if ((value = props.getProperty(key)) != null) {
+            g.setRequestBurstSize(parseInt(value, key));
+            if (g.getRequestBurstSize() < 1) {
+                throw new IllegalArgumentException("must have " + key + " >= 1");
+            }
+        }
+
+        key = prefix + "queue";
+        if ((value = props.getProperty(key)) != null) {
+            g.setMaxQueueLength(parseInt(value, key));
+            if (g.getMaxQueueLength() < 1) {
+                throw new IllegalArgumentException("must have " + key + " >= 1");
+            }
+        }
+
+        // The target CPU and load sizing only control closed loop groups
+        if (g.isOpenLoop()) {
+            for (String setting : new String[] {"cpu", "autosize"}) {
+                if (props.getProperty(prefix + setting) != null) {
+                    throw new IllegalArgumentException(
+                            prefix + setting + " cannot be used with " + prefix + "rate");
+                }
+            }
+        }
+        return g;
+    }
+
+    /**
+     * The names of the metrics that may be measured in a phase. Those that depend on the sensors
+     * are included even if the sensors are not available.
+     */
+    private static Set<String> metricNames(Phase phase) {
+        Set<String> names = new HashSet<String>(Arrays.asList(SYSTEM_METRICS));
+        for (WorkloadGroup g : phase.groups) {
+            for (String m : GROUP_METRICS) {
+                names.add(g.getName() + "." + m);
+            }
+            if (g.isOpenLoop()) {
+                for (String m : REQUEST_METRICS) {
+                    names.add(g.getName() + "." + m);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static boolean isGroupSetting(Phase phase, String groupName, String setting) {
+        for (WorkloadGroup g : phase.groups) {
+            if (g.getName().equals(groupName)) {
+                for (String s : GROUP_SETTINGS) {
+                    if (s.equals(setting)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a comma separated list of names. Names are used to make up other keys and to refer to
+     * metrics so are restricted to letters, digits, '_' and '-'.
+     */
+    private static List<String> parseNames(Properties props, String key) {
+        List<String> names = new ArrayList<String>();
+        for (String name : require(props, key).split(",")) {
+            name = name.trim();
+            if (!name.matches("[A-Za-z0-9_-]+")) {
+                throw new IllegalArgumentException("bad name '" + name + "' in " + key);
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    private static String require(Properties props, String key) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException("missing " + key);
+        }
+        return value;
+    }
+
+    private static int parseInt(String value, String key) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("must have a whole number for " + key);
+        }
+    }
+
+    private static double parseDouble(String value, String key) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("must have a number for " + key);
+        }
+    }
+}
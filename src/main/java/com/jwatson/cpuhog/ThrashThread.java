@@ -1,5 +1,7 @@
 package com.jwatson.cpuhog;
 
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * All the things the application does to load the system are in this class.
  *
@@ -9,9 +11,18 @@ package com.jwatson.cpuhog;
 public final class ThrashThread extends Thread {
 
     private static final int A_FEW_TIMES = 100;
+    private static final double NS_PER_MS = 1.0e6;
 
+    /** The group this thread belongs to and takes its settings from. */
+    private final WorkloadGroup group;
     private volatile long loadExecuteTime_ns = -1;
     private volatile long actualWaitTime_ns = -1;
+    /** Total multiply-accumulate operations performed by the load so far. */
+    private volatile long loadOps;
+
+    ThrashThread(WorkloadGroup group) {
+        this.group = group;
+    }
 
     public long getLoadExecuteTime_ns() {
         return loadExecuteTime_ns;
@@ -21,6 +32,10 @@ public final class ThrashThread extends Thread {
         return actualWaitTime_ns;
     }
 
+    public long getLoadOps() {
+        return loadOps;
+    }
+
     /**
      * This method creates a CPU load on the system. It uses two double vectors and avoids object
      * creation and destruction (and garbage collection). Memory footprint should remain fairly
@@ -31,15 +46,17 @@ public final class ThrashThread extends Thread {
      *
      * If the required loadSize is changed then new vectors are created
      *
+     * The thread finishes when its group is stopped.
+     *
      * Note that the total time (s) for each iteration is Total loop time is loadExecute_ns/1e9 +
      * loadWaitTime_ms/1e3
      *
      */
     @Override
     public void run() {
-        while (true) {
-            double[] coefs = new double[CPUhog.getLoadSize()];
-            double[] signal = new double[CPUhog.getLoadSize() * CPUhog.SIGNAL_FACTOR];
+        while (!group.isStopped()) {
+            double[] coefs = new double[group.getLoadSize()];
+            double[] signal = new double[group.getLoadSize() * CPUhog.SIGNAL_FACTOR];
 
             fillCoefs(coefs);
 
@@ -48,7 +65,7 @@ public final class ThrashThread extends Thread {
 
                 for (int i = 0; i < A_FEW_TIMES; i++) {
 
-                    if (coefs.length != CPUhog.getLoadSize()) {
+                    if (coefs.length != group.getLoadSize() || group.isStopped()) {
                         break sizeChanged;
                     }
 
@@ -57,16 +74,13 @@ public final class ThrashThread extends Thread {
                     convolve(coefs, signal);
 
                     loadExecuteTime_ns = System.nanoTime() - t0;
+                    loadOps += convolveOps(coefs, signal);
 
 
                     long t1 = System.nanoTime();
-                    if (CPUhog.getLoadWaitTime_ms() > 0) {
-                        synchronized (this) {
-                            try {
-                                this.wait(CPUhog.getLoadWaitTime_ms());
-                            } catch (InterruptedException ex) {
-                            }
-                        }
+                    // The wait may be a fraction of a ms so Object.wait() is not precise enough
+                    if (group.getLoadWaitTime_ms() > 0) {
+                        LockSupport.parkNanos((long) (group.getLoadWaitTime_ms() * NS_PER_MS));
                     }
                     actualWaitTime_ns = System.nanoTime() - t1;
                 }
@@ -74,7 +88,7 @@ public final class ThrashThread extends Thread {
         }
     }
 
-    private void fillCoefs(double[] coefs) {
+    static void fillCoefs(double[] coefs) {
         double sum = 0;
         for (int i = 0; i < coefs.length; i++) {
             coefs[i] = Math.random();
@@ -86,12 +100,19 @@ public final class ThrashThread extends Thread {
         }
     }
 
-    private void randomiseSignal(double[] signal) {
+    static void randomiseSignal(double[] signal) {
         for (int i = 0; i < signal.length; i++) {
             signal[i] = Math.random();
         }
     }
 
+    /**
+     * The number of multiply-accumulate operations done by one full convolution.
+     */
+    private static long convolveOps(double[] coefs, double[] signal) {
+        return (long) (signal.length - coefs.length) * coefs.length;
+    }
+
     /**
      * This function represents the load - it is this routine that is timed to give the 'load time'
      * or 'loop time'.
@@ -99,8 +120,21 @@ public final class ThrashThread extends Thread {
      * @param coefs
      * @param signal
      */
-    private void convolve(double[] coefs, double[] signal) {
-        for (int off = 0; off < signal.length - coefs.length; off++) {
+    static void convolve(double[] coefs, double[] signal) {
+        convolve(coefs, signal, 0, signal.length - coefs.length);
+    }
+
+    /**
+     * Perform part of the convolution - only the output points from offset 'from' (inclusive) to
+     * 'to' (exclusive). Each output point costs coefs.length multiply-accumulates.
+     *
+     * @param coefs
+     * @param signal
+     * @param from first output offset
+     * @param to end output offset, at most signal.length - coefs.length
+     */
+    static void convolve(double[] coefs, double[] signal, int from, int to) {
+        for (int off = from; off < to; off++) {
             double sum = 0;
             for (int i = 0; i < coefs.length; i++) {
                 sum += signal[i + off] * coefs[i];
@@ -0,0 +1,446 @@
+package com.jwatson.cpuhog;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of load threads that share the same settings - the number of threads, the load size, the
+ * target CPU and whether the load is closed loop ({@link ThrashThread}s) or open loop
+ * ({@link RequestWorker}s fed by a {@link RequestGenerator}).
+ *
+ * The command line creates a single group. A scenario file may run several groups at once, each
+ * being adjusted towards its own target CPU.
+ *
+ * The settings must be made before the group is started.
+ *
+ * @author jim
+ */
+@SuppressWarnings("checkstyle:membername")
+public final class WorkloadGroup {
+
+    private static final double PERCENT_100 = 100.0;
+    private static final double MS_PER_S = 1000.0;
+    private static final double NS_PER_S = 1.0e9;
+    private static final double NS_PER_MS = 1.0e6;
+    private static final double NS_PER_US = 1000.0;
+    private static final double ABOUT_HALFWAY = 0.5;
+    private static final double SMALL_TWEAK = 0.01;
+
+    private static ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final String name;
+
+    /** Number of load threads (or request workers). */
+    private int nThreads = 10;
+    /**
+     * the size of the load. The bigger this value, the greater amount of time the main load part of
+     * the load loop will take.
+     */
+    private volatile int loadSize = 1000;
+    /** Can the load automatically adjust its size. */
+    private boolean autoSizeAdjustmentAllowed;
+    /** Target CPU percentage hogging to aim for. */
+    private int targetCPUpercent = 100;
+    /**
+     * The wait time in the load loop is adjusted to fix the load at the requested percentage. All
+     * load threads in the group use the same wait time. Total loop time is loadExecute_ns/1e9 +
+     * loadWaitTime_ms/1e3. Kept as a double so that the damped adjustment is not lost to rounding
+     * when the wait is only a few ms.
+     */
+    private volatile double loadWaitTime_ms;
+
+    /** Request rate for the open loop mode. Zero runs the closed loop load threads. */
+    private double requestsPerSecond;
+    /** Mean CPU time used by each request in open loop mode. */
+    private long requestCost_us = 1000;
+    /** Distribution of the CPU time used by each request. */
+    private RequestGenerator.CostDistribution requestCostDistribution =
+            RequestGenerator.CostDistribution.EXPONENTIAL;
+    /** Number of requests arriving at once. */
+    private int requestBurstSize = 1;
+    /** Most requests that may wait for a worker before further requests are dropped. */
+    private int maxQueueLength = 100000;
+
+    private final List<ThrashThread> loadThreads = new ArrayList<ThrashThread>();
+    private final List<RequestWorker> requestWorkers = new ArrayList<RequestWorker>();
+    private RequestGenerator requestGenerator;
+    /** Times to execute each request since the monitor last looked. */
+    private final LatencyHistogram serviceTimes = new LatencyHistogram();
+    /** Times from intended arrival to completion since the monitor last looked. */
+    private final LatencyHistogram responseTimes = new LatencyHistogram();
+    /** Times to execute each request since the group started. */
+    private final LatencyHistogram totalServiceTimes = new LatencyHistogram();
+    /** Times from intended arrival to completion since the group started. */
+    private final LatencyHistogram totalResponseTimes = new LatencyHistogram();
+
+    private volatile boolean stopped;
+
+    /** Values from the last call of {@link #update}. */
+    private long lastUpdateTime_ns;
+    private long lastCpuTime_ns;
+    private long lastLoadOps;
+    private long lastDroppedRequests;
+    private long periodDroppedRequests;
+    private double percentCPU;
+    private double aveLoadExecuteTime_ns;
+    private long periodLoadOps;
+
+    /**
+     * @param name used to identify the group in the log and in scenario assertions
+     */
+    public WorkloadGroup(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Create a group with the same settings as another.
+     *
+     * @param name used to identify the group in the log and in scenario assertions
+     * @param defaults the group to copy the settings from
+     */
+    public WorkloadGroup(String name, WorkloadGroup defaults) {
+        this.name = name;
+        nThreads = defaults.nThreads;
+        loadSize = defaults.loadSize;
+        autoSizeAdjustmentAllowed = defaults.autoSizeAdjustmentAllowed;
+        targetCPUpercent = defaults.targetCPUpercent;
+        requestsPerSecond = defaults.requestsPerSecond;
+        requestCost_us = defaults.requestCost_us;
+        requestCostDistribution = defaults.requestCostDistribution;
+        requestBurstSize = defaults.requestBurstSize;
+        maxQueueLength = defaults.maxQueueLength;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreadCount() {
+        return nThreads;
+    }
+
+    public void setThreadCount(int nThreads) {
+        this.nThreads = nThreads;
+    }
+
+    public int getLoadSize() {
+        return loadSize;
+    }
+
+    public void setLoadSize(int loadSize) {
+        this.loadSize = loadSize;
+    }
+
+    public boolean isAutoSizeAdjustmentAllowed() {
+        return autoSizeAdjustmentAllowed;
+    }
+
+    public void setAutoSizeAdjustmentAllowed(boolean autoSizeAdjustmentAllowed) {
+        this.autoSizeAdjustmentAllowed = autoSizeAdjustmentAllowed;
+    }
+
+    public int getTargetCPUpercent() {
+        return targetCPUpercent;
+    }
+
+    public void setTargetCPUpercent(int targetCPUpercent) {
+        this.targetCPUpercent = targetCPUpercent;
+    }
+
+    public double getLoadWaitTime_ms() {
+        return loadWaitTime_ms;
+    }
+
+    public boolean isOpenLoop() {
+        return requestsPerSecond > 0;
+    }
+
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public long getRequestCost_us() {
+        return requestCost_us;
+    }
+
+    @SuppressWarnings("checkstyle:parametername")
+    public void setRequestCost_us(long requestCost_us) {
+        this.requestCost_us = requestCost_us;
+    }
+
+    public RequestGenerator.CostDistribution getRequestCostDistribution() {
+        return requestCostDistribution;
+    }
+
+    public void setRequestCostDistribution(
+            RequestGenerator.CostDistribution requestCostDistribution) {
+        this.requestCostDistribution = requestCostDistribution;
+    }
+
+    public int getRequestBurstSize() {
+        return requestBurstSize;
+    }
+
+    public void setRequestBurstSize(int requestBurstSize) {
+        this.requestBurstSize = requestBurstSize;
+    }
+
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    public void setMaxQueueLength(int maxQueueLength) {
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    public RequestGenerator getRequestGenerator() {
+        return requestGenerator;
+    }
+
+    public LatencyHistogram getServiceTimes() {
+        return serviceTimes;
+    }
+
+    public LatencyHistogram getResponseTimes() {
+        return responseTimes;
+    }
+
+    public LatencyHistogram getTotalServiceTimes() {
+        return totalServiceTimes;
+    }
+
+    public LatencyHistogram getTotalResponseTimes() {
+        return totalResponseTimes;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Create and start the threads of this group.
+     */
+    public void start() {
+        lastUpdateTime_ns = System.nanoTime();
+        if (isOpenLoop()) {
+            requestGenerator = new RequestGenerator(this, requestsPerSecond, requestBurstSize,
+                    requestCost_us * NS_PER_US, requestCostDistribution, maxQueueLength);
+        }
+
+        for (int i = 0; i < nThreads; i++) {
+            Thread t;
+            if (isOpenLoop()) {
+                RequestWorker w = new RequestWorker(this);
+                requestWorkers.add(w);
+                t = w;
+            } else {
+                ThrashThread tt = new ThrashThread(this);
+                loadThreads.add(tt);
+                t = tt;
+            }
+            t.setName(name + "-" + i);
+            t.setPriority(t.getPriority() - 1); // minimise system killing ability?
+            t.setDaemon(false); // slower exit - but everything is forced killed
+            t.start();
+        }
+
+        if (isOpenLoop()) {
+            // Keep the arrivals on time even when the workers are saturated
+            requestGenerator.setName(name + "-arrivals");
+            requestGenerator.setPriority(Thread.MAX_PRIORITY);
+            requestGenerator.setDaemon(false);
+            requestGenerator.start();
+        }
+    }
+
+    /**
+     * Stop all the threads of this group and wait for them to finish.
+     */
+    public void stop() {
+        stopped = true;
+        List<Thread> threads = new ArrayList<Thread>(loadThreads);
+        threads.addAll(requestWorkers);
+        if (requestGenerator != null) {
+            threads.add(requestGenerator);
+        }
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    /**
+     * Record the times for a completed request.
+     */
+    @SuppressWarnings("checkstyle:parametername")
+    void recordRequest(long service_ns, long response_ns) {
+        serviceTimes.record(service_ns);
+        responseTimes.record(response_ns);
+        totalServiceTimes.record(service_ns);
+        totalResponseTimes.record(response_ns);
+    }
+
+    /**
+     * The CPU time used so far by the load threads (or request workers) of this group.
+     */
+    public long getCpuTime_ns() {
+        long sum = 0;
+        for (ThrashThread t : loadThreads) {
+            sum += Math.max(0, threadMXBean.getThreadCpuTime(t.getId()));
+        }
+        for (RequestWorker w : requestWorkers) {
+            sum += Math.max(0, threadMXBean.getThreadCpuTime(w.getId()));
+        }
+        return sum;
+    }
+
+    /**
+     * Total multiply-accumulate operations performed by the load so far.
+     */
+    public long getLoadOps() {
+        long sum = 0;
+        for (ThrashThread t : loadThreads) {
+            sum += t.getLoadOps();
+        }
+        for (RequestWorker w : requestWorkers) {
+            sum += w.getLoadOps();
+        }
+        return sum;
+    }
+
+    /**
+     * Percentage of all the CPUs used by this group in the period up to the last update.
+     */
+    public double getPercentCPU() {
+        return percentCPU;
+    }
+
+    /**
+     * The average time to perform the load in the closed loop threads at the last update, or -1 if
+     * not known.
+     */
+    public double getAveLoadExecuteTime_ns() {
+        return aveLoadExecuteTime_ns;
+    }
+
+    /**
+     * Operations performed in the period up to the last update.
+     */
+    public long getPeriodLoadOps() {
+        return periodLoadOps;
+    }
+
+    /**
+     * Requests dropped because the queue was full in the period up to the last update.
+     */
+    public long getPeriodDroppedRequests() {
+        return periodDroppedRequests;
+    }
+
+    /**
+     * Called by the monitor at the end of each monitoring period. Measures the CPU used by the
+     * group and adjusts the load size and wait time to bring the group to its target CPU.
+     *
+     * @param monitorWait_ms the time between monitoring periods
+     */
+    @SuppressWarnings({"checkstyle:parametername", "checkstyle:localvariablename"})
+    public void update(long monitorWait_ms) {
+        long now_ns = System.nanoTime();
+        long cpuTime_ns = getCpuTime_ns();
+        long loadOps = getLoadOps();
+        double timeDelta_ns = now_ns - lastUpdateTime_ns;
+        percentCPU = PERCENT_100 * (cpuTime_ns - lastCpuTime_ns) / timeDelta_ns
+                / Runtime.getRuntime().availableProcessors();
+        periodLoadOps = loadOps - lastLoadOps;
+        lastUpdateTime_ns = now_ns;
+        lastCpuTime_ns = cpuTime_ns;
+        lastLoadOps = loadOps;
+        if (requestGenerator != null) {
+            long dropped = requestGenerator.getDroppedRequests();
+            periodDroppedRequests = dropped - lastDroppedRequests;
+            lastDroppedRequests = dropped;
+        }
+
+        // interrogate only the load threads to
+        // get an average time to perform the load within
+        // the main thread loop
+        long sumExecuteTime = 0;
+        int nLoadThreads = 0;
+        for (ThrashThread t : loadThreads) {
+            if (t.getLoadExecuteTime_ns() > 0) {
+                sumExecuteTime += t.getLoadExecuteTime_ns();
+                nLoadThreads++;
+            }
+        }
+        if (nLoadThreads == 0) {
+            sumExecuteTime = -1;
+            nLoadThreads = 1;
+        }
+        aveLoadExecuteTime_ns = sumExecuteTime / nLoadThreads;
+
+        // Vector size may be adjusted if the load is running too
+        // fast or too slow.
+        // The target is to have the load run LOADRUNSPERLOG_TARGET times
+        // within the logging time
+        // i.e. N * (load + load_wait) = logging_time
+        //
+        // In practice the size is adjusted to bring the number of iterations
+        // achieved between ..._LO and ..._HI limits
+        if (autoSizeAdjustmentAllowed && sumExecuteTime > 0) {
+            // for this loop time work out how many times this theoretically ought
+            // to run if the loop wait time were perfect
+            double runTimesPerLog = (monitorWait_ms / MS_PER_S)
+                    * (targetCPUpercent / PERCENT_100) / (aveLoadExecuteTime_ns / NS_PER_S);
+            // Now adjust - about halfway to the correct value if outside the
+            // HI/LO tolerance - otherwise just tweak a bit
+            if (runTimesPerLog < CPUhog.LOADRUNSPERLOG_LO) {
+                loadSize = adjustedLoadSize(runTimesPerLog, ABOUT_HALFWAY);
+            } else if (runTimesPerLog > CPUhog.LOADRUNSPERLOG_HI) {
+                loadSize = adjustedLoadSize(runTimesPerLog, ABOUT_HALFWAY);
+            } else {
+                loadSize = adjustedLoadSize(runTimesPerLog, SMALL_TWEAK);
+            }
+        }
+
+        // Adjust the wait time used in the load threads to give
+        // the target CPU load
+        if (targetCPUpercent < PERCENT_100 && sumExecuteTime > 0) {
+            double correctedLoadWaitTime_ns =
+                    (aveLoadExecuteTime_ns + loadWaitTime_ms * NS_PER_MS) * percentCPU
+                            / targetCPUpercent - aveLoadExecuteTime_ns;
+            loadWaitTime_ms = loadWaitTime_ms * (1.0 - CPUhog.LOADWAITDAMPING)
+                    + (correctedLoadWaitTime_ns / NS_PER_MS) * CPUhog.LOADWAITDAMPING;
+        }
+    }
+
+    /**
+     * Return a new load sizing based on a theoretic estimate of load required to achieve target
+     * loop time. The estimate is allowed to be as small as necessary - however the upper bound is
+     * limited to twice the current value.
+     *
+     * @param factor Value of 1.0 returns the estimate; value 0.0 returns the original loadSizing
+     *        value.
+     * @return The factored and limited estimate
+     */
+    private int adjustedLoadSize(double currentLoadRunsPerLog, double factor) {
+        double scale = currentLoadRunsPerLog / CPUhog.LOADRUNSPERLOG_TARGET;
+        double estimate = loadSize * scale * scale;
+
+        if (estimate > loadSize) {
+            estimate = Math.min(estimate, loadSize * 2.);
+        }
+        int newLoad = (int) (estimate * factor + loadSize * (1. - factor));
+        return newLoad;
+    }
+}